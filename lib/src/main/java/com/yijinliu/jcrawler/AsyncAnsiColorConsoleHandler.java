@@ -0,0 +1,149 @@
+package com.yijinliu.jcrawler;
+
+import java.io.PrintStream;
+import java.util.ArrayList;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.ConsoleHandler;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+// An AnsiColorConsoleHandler which doesn't block the logging thread. Records are put into a
+// bounded queue and a single writer thread formats them and prints them in batches. When the
+// queue is full, INFO and lower records are dropped and the number of dropped records is reported
+// later; WARNING and higher records wait for room instead, so they are never lost.
+public class AsyncAnsiColorConsoleHandler extends AnsiColorConsoleHandler {
+    public static void replaceDefault() {
+        Logger logger = Logger.getLogger("");
+        for (Handler handler : logger.getHandlers()) {
+            if (handler instanceof ConsoleHandler) {
+                logger.removeHandler(handler);
+                logger.addHandler(new AsyncAnsiColorConsoleHandler());
+                break;
+            }
+        }
+    }
+
+    public AsyncAnsiColorConsoleHandler() {
+        this(System.err, QUEUE_SIZE);
+    }
+
+    AsyncAnsiColorConsoleHandler(PrintStream out, int queueSize) {
+        this.out = out;
+        this.queue = new ArrayBlockingQueue<>(queueSize);
+        this.queued = new AtomicLong();
+        this.dropped = new AtomicLong();
+        this.writer = new Thread(this::writeLoop, "async-console-log");
+        this.writer.setDaemon(true);
+        this.writer.start();
+    }
+
+    @Override
+    public void publish(LogRecord record) {
+        if (closed || !isLoggable(record)) return;
+        // Resolve the caller here, it can't be inferred from the writer thread.
+        record.getSourceClassName();
+        if (queue.offer(record)) {
+            queued.incrementAndGet();
+        } else if (record.getLevel().intValue() < Level.WARNING.intValue()) {
+            dropped.incrementAndGet();
+        } else {
+            try {
+                while (!queue.offer(record, 100, TimeUnit.MILLISECONDS)) {
+                    if (closed || !writer.isAlive()) {
+                        printNow(record);
+                        return;
+                    }
+                }
+                queued.incrementAndGet();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                printNow(record);
+            }
+        }
+    }
+
+    // Blocks until everything queued so far has been written.
+    @Override
+    public void flush() {
+        long target = queued.get();
+        synchronized (this) {
+            while (written < target && writer.isAlive()) {
+                try {
+                    wait(100);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    @Override
+    public void close() {
+        flush();
+        closed = true;
+        writer.interrupt();
+        try {
+            writer.join(1000);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    // Used for WARNING and higher records which can't be queued.
+    private void printNow(LogRecord record) {
+        out.print(logRecordToString(record));
+        out.flush();
+    }
+
+    private void writeLoop() {
+        ArrayList<LogRecord> batch = new ArrayList<>(BATCH_SIZE);
+        StringBuilder builder = new StringBuilder();
+        while (!closed) {
+            try {
+                LogRecord first = queue.poll(1, TimeUnit.SECONDS);
+                if (first != null) batch.add(first);
+            } catch (InterruptedException e) {
+                continue;
+            }
+            queue.drainTo(batch, BATCH_SIZE - batch.size());
+            if (batch.isEmpty() && dropped.get() == 0) continue;
+            long droppedSoFar = dropped.getAndSet(0);
+            if (droppedSoFar > 0) {
+                builder.append("\u001b[93mDropped ").append(droppedSoFar)
+                       .append(" log records.\u001b[0m").append(System.lineSeparator());
+            }
+            for (LogRecord record : batch) {
+                try {
+                    builder.append(logRecordToString(record));
+                } catch (RuntimeException e) {
+                    reportError(null, e, ErrorManager.FORMAT_FAILURE);
+                }
+            }
+            out.print(builder);
+            out.flush();
+            builder.setLength(0);
+            synchronized (this) {
+                written += batch.size();
+                notifyAll();
+            }
+            batch.clear();
+        }
+    }
+
+    private static final int QUEUE_SIZE = 8192;
+    private static final int BATCH_SIZE = 256;
+
+    private final PrintStream out;
+    private final ArrayBlockingQueue<LogRecord> queue;
+    private final AtomicLong queued;
+    private final AtomicLong dropped;
+    private final Thread writer;
+    private volatile boolean closed;
+    private long written;
+}
@@ -0,0 +1,77 @@
+package com.yijinliu.jcrawler;
+
+// A token bucket shared by every transfer it governs, see ThrottledInputStream. Every read takes
+// tokens for its chunk before it happens, so both downloads and page crawls are shaped as they
+// transfer. Page crawls yield to waiting downloads. The bucket holds at most one second worth of
+// bytes (and at least MIN_CAPACITY), so after an idle period up to that much can go out in a
+// burst at link speed; the long term rate stays bounded.
+public class BandwidthLimiter {
+
+    // 0 means unlimited.
+    public BandwidthLimiter(long bytesPerSecond) {
+        this.lastRefillNanos = System.nanoTime();
+        setBytesPerSecond(bytesPerSecond);
+    }
+
+    public synchronized void setBytesPerSecond(long bytesPerSecond) {
+        refill();
+        this.bytesPerSecond = Math.max(0, bytesPerSecond);
+        this.available = Math.min(available, capacity());
+        notifyAll();
+    }
+
+    public synchronized long bytesPerSecond() {
+        return bytesPerSecond;
+    }
+
+    // Blocks until `bytes` can be sent. If yieldToDownloads is set, also waits for every pending
+    // download acquisition to go first.
+    public synchronized void acquire(int bytes, boolean yieldToDownloads)
+            throws InterruptedException {
+        if (!yieldToDownloads) waitingDownloads++;
+        try {
+            while (true) {
+                if (bytesPerSecond == 0) return;
+                refill();
+                double needed = Math.max(1, Math.min(bytes, capacity()));
+                if (available >= needed && (!yieldToDownloads || waitingDownloads == 0)) {
+                    available -= bytes;
+                    return;
+                }
+                double missing = Math.max(needed - available, 1);
+                wait(Math.max(1, (long)(missing * 1000 / bytesPerSecond)));
+            }
+        } finally {
+            if (!yieldToDownloads) {
+                waitingDownloads--;
+                notifyAll();
+            }
+        }
+    }
+
+    // Charges bytes that were already transferred. A negative count returns unused tokens.
+    public synchronized void consume(long bytes) {
+        if (bytesPerSecond == 0) return;
+        refill();
+        available = Math.min(capacity(), available - bytes);
+        if (bytes < 0) notifyAll();
+    }
+
+    private void refill() {
+        long now = System.nanoTime();
+        available = Math.min(
+            capacity(), available + (now - lastRefillNanos) * bytesPerSecond / 1e9);
+        lastRefillNanos = now;
+    }
+
+    private double capacity() {
+        return Math.max(bytesPerSecond, MIN_CAPACITY);
+    }
+
+    private static final int MIN_CAPACITY = 64 * 1024;
+
+    private long bytesPerSecond;
+    private double available;
+    private long lastRefillNanos;
+    private int waitingDownloads;
+}
@@ -0,0 +1,41 @@
+package com.yijinliu.jcrawler;
+
+import org.jsoup.nodes.Element;
+import org.jsoup.select.Elements;
+import org.jsoup.select.Evaluator;
+import org.jsoup.select.QueryParser;
+
+// A CSS query parsed once into a jsoup Evaluator. Handlers should keep these as static finals
+// instead of passing query strings to Element.select, which re-parses the query on every call.
+public final class CompiledSelector {
+
+    public static CompiledSelector compile(String query) {
+        return new CompiledSelector(query, QueryParser.parse(query));
+    }
+
+    public Elements select(Element root) {
+        return root.select(evaluator);
+    }
+
+    // Returns null if nothing matches.
+    public Element selectFirst(Element root) {
+        return root.selectFirst(evaluator);
+    }
+
+    public String query() {
+        return query;
+    }
+
+    @Override
+    public String toString() {
+        return query;
+    }
+
+    private CompiledSelector(String query, Evaluator evaluator) {
+        this.query = query;
+        this.evaluator = evaluator;
+    }
+
+    private final String query;
+    private final Evaluator evaluator;
+}
@@ -0,0 +1,71 @@
+package com.yijinliu.jcrawler;
+
+import com.google.auto.value.AutoValue;
+import com.google.gson.GsonBuilder;
+import com.ryanharter.auto.value.gson.GenerateTypeAdapter;
+
+// A queued crawl or download, as saved to checkpoint files. Checkpoints also record the URLs
+// already crawled or downloaded, as CRAWLED/DOWNLOADED entries holding just the dedup key.
+@AutoValue
+@GenerateTypeAdapter
+abstract class CrawlTask {
+  public static final String CRAWL = "crawl";
+  public static final String DOWNLOAD = "download";
+  public static final String CRAWLED = "crawled";
+  public static final String DOWNLOADED = "downloaded";
+
+  public abstract String kind();
+  public abstract String url();
+  public abstract int timeoutMillis();
+  public abstract int maxTries();
+  // Empty for crawls.
+  public abstract String file();
+  public abstract String referer();
+  public abstract String cookies();
+
+  public static CrawlTask crawl(String url, int timeoutMillis, int maxTries) {
+    return builder().setKind(CRAWL).setUrl(url).setFile("").setReferer("").setCookies("")
+        .setTimeoutMillis(timeoutMillis).setMaxTries(maxTries).build();
+  }
+
+  public static CrawlTask download(String url, String file, String referer, String cookies,
+                                   int timeoutMillis, int maxTries) {
+    return builder().setKind(DOWNLOAD).setUrl(url).setFile(file).setReferer(referer)
+        .setCookies(cookies).setTimeoutMillis(timeoutMillis).setMaxTries(maxTries).build();
+  }
+
+  public static CrawlTask seen(String kind, String key) {
+    return builder().setKind(kind).setUrl(key).setFile("").setReferer("").setCookies("")
+        .setTimeoutMillis(0).setMaxTries(0).build();
+  }
+
+  public String toJson() {
+      return new GsonBuilder()
+          .registerTypeAdapterFactory(GenerateTypeAdapter.FACTORY)
+          .create()
+          .toJson(this);
+  }
+
+  public static CrawlTask fromJson(String json) {
+      return new GsonBuilder()
+          .registerTypeAdapterFactory(GenerateTypeAdapter.FACTORY)
+          .create()
+          .fromJson(json, CrawlTask.class);
+  }
+
+  public static Builder builder() {
+    return new AutoValue_CrawlTask.Builder();
+  }
+
+  @AutoValue.Builder
+  abstract interface Builder {
+    Builder setKind(String kind);
+    Builder setUrl(String url);
+    Builder setFile(String file);
+    Builder setReferer(String referer);
+    Builder setCookies(String cookies);
+    Builder setTimeoutMillis(int timeoutMillis);
+    Builder setMaxTries(int maxTries);
+    CrawlTask build();
+  }
+}
@@ -3,26 +3,42 @@ package com.yijinliu.jcrawler;
 import java.io.BufferedReader;
 import java.io.FileWriter;
 import java.io.IOException;
+import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.PrintWriter;
 import java.net.HttpURLConnection;
 import java.net.MalformedURLException;
+import java.net.SocketTimeoutException;
 import java.net.URL;
+import java.nio.charset.Charset;
+import java.nio.charset.IllegalCharsetNameException;
+import java.nio.charset.StandardCharsets;
 import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Locale;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
 import java.util.concurrent.Phaser;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
 import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiPredicate;
 
 import com.google.common.flogger.FluentLogger;
+import com.google.gson.JsonParseException;
 import org.jsoup.Jsoup;
 import org.jsoup.nodes.Document;
 
@@ -33,9 +49,15 @@ public class Crawler {
     }
 
     public Crawler(int numThreads, String downloadRoot, String logFile) {
-        this.executor = Executors.newFixedThreadPool(numThreads);
+        // Daemon threads, so a hung connection can't keep the JVM alive after shutdown gives up.
+        this.executor = Executors.newFixedThreadPool(numThreads, r -> {
+            Thread thread = new Thread(r);
+            thread.setDaemon(true);
+            return thread;
+        });
         this.downloadRoot = downloadRoot;
         this.handlers = new ArrayList<Handler>();
+        this.dropQueryParam = this::ignoreQueryParam;
         this.phaser = new Phaser();
         this.phaser.register();
         this.lock = new ReentrantLock();
@@ -43,6 +65,11 @@ public class Crawler {
         this.urlToDownloads = new HashMap<>();
         this.failedCrawls = new ConcurrentLinkedDeque<>();
         this.failedDownloads = new ConcurrentLinkedDeque<>();
+        this.bandwidth = new BandwidthLimiter(0);
+        this.hostBandwidths = new HashMap<>();
+        this.pendingTasks = new ConcurrentHashMap<>();
+        this.deferredTasks = new ConcurrentLinkedDeque<>();
+        this.terminated = new CountDownLatch(1);
         if (!logFile.isEmpty()) {
             try {
                 this.logWriter = new PrintWriter(new FileWriter(logFile, true), true);
@@ -57,39 +84,284 @@ public class Crawler {
         logger.atInfo().log("Added handler '%s'.", handler.name());
     }
 
+    // Caps the total bytes/sec of all crawls and downloads. 0 means unlimited. Can be changed while
+    // crawling.
+    public void setBandwidth(long bytesPerSecond) {
+        bandwidth.setBytesPerSecond(bytesPerSecond);
+        logger.atInfo().log("Bandwidth set to %d bytes/sec.", bytesPerSecond);
+    }
+
+    // Caps the bytes/sec of crawls and downloads from one host, on top of the global budget.
+    public void setHostBandwidth(String host, long bytesPerSecond) {
+        host = host.toLowerCase(Locale.ROOT);
+        lock.lock();
+        BandwidthLimiter limiter = hostBandwidths.get(host);
+        if (limiter == null) {
+            hostBandwidths.put(host, new BandwidthLimiter(bytesPerSecond));
+        } else {
+            limiter.setBytesPerSecond(bytesPerSecond);
+        }
+        lock.unlock();
+        logger.atInfo().log("Bandwidth for '%s' set to %d bytes/sec.", host, bytesPerSecond);
+    }
+
+    // Applies to crawls and downloads. 0 means the read timeout passed to crawl/download is also
+    // used as connect timeout.
+    public void setConnectTimeout(int millis) {
+        connectTimeoutMillis = millis;
+    }
+
+    // Bounds the total time of one crawl or download attempt, including redirects. 0 means no
+    // bound other than the connect and read timeouts.
+    public void setRequestDeadline(int millis) {
+        requestDeadlineMillis = millis;
+    }
+
+    // Restores the URLs seen by an earlier shutdown and queues the tasks it left. Returns the
+    // number of tasks queued. Lines which can't be parsed are skipped.
+    public int resume(String checkpointFile) {
+        int resumed = 0;
+        try (BufferedReader reader = Files.newBufferedReader(Paths.get(checkpointFile))) {
+            String line;
+            int lineNumber = 0;
+            while ((line = reader.readLine()) != null) {
+                lineNumber++;
+                if (line.isEmpty()) continue;
+                CrawlTask task;
+                try {
+                    task = CrawlTask.fromJson(line);
+                } catch (JsonParseException | IllegalStateException e) {
+                    task = null;
+                }
+                if (task == null) {
+                    logger.atWarning().log(
+                        "Skipped bad line %d in checkpoint '%s'.", lineNumber, checkpointFile);
+                    continue;
+                }
+                switch (task.kind()) {
+                    case CrawlTask.CRAWLED:
+                        markSeen(task.url(), urlToCrawls);
+                        restoredCrawls++;
+                        break;
+                    case CrawlTask.DOWNLOADED:
+                        markSeen(task.url(), urlToDownloads);
+                        restoredDownloads++;
+                        break;
+                    case CrawlTask.DOWNLOAD:
+                        if (download(task.url(), task.file(), task.referer(), task.cookies(),
+                                     task.timeoutMillis(), task.maxTries())) {
+                            resumed++;
+                        }
+                        break;
+                    default:
+                        if (crawl(task.url(), task.timeoutMillis(), task.maxTries())) resumed++;
+                        break;
+                }
+            }
+        } catch (IOException e) {
+            logger.atWarning().withCause(e).log("Failed to read checkpoint '%s'.", checkpointFile);
+        }
+        logger.atInfo().log("Resumed %d jobs and %d seen URLs from '%s'.",
+                            resumed, restoredCrawls + restoredDownloads, checkpointFile);
+        return resumed;
+    }
+
     public boolean crawl(String url, int timeoutMillis, int maxTries) {
-        url = sanitizeUrl(url);
-        if (!tryIncVal(url, 0, urlToCrawls)) return false;
+        url = UrlCanonicalizer.escape(url);
+        String key = canonicalizeUrl(url);
+        if (draining) {
+            return defer(CrawlTask.crawl(url, timeoutMillis, maxTries), key, urlToCrawls);
+        }
+        if (!tryIncVal(key, 0, urlToCrawls)) return false;
         enqueueCrawl(url, timeoutMillis, maxTries);
         return true;
     }
 
     public boolean retryCrawl(String url, int timeoutMillis, int maxTries) {
-        url = sanitizeUrl(url);
-        if (!tryIncVal(url, maxTries, urlToCrawls)) return false;
+        url = UrlCanonicalizer.escape(url);
+        if (!tryIncVal(canonicalizeUrl(url), maxTries, urlToCrawls)) return false;
         enqueueCrawl(url, timeoutMillis, maxTries);
         return true;
     }
     
     public boolean download(String url, String filename, String referer, String cookies,
                             int timeoutMillis, int maxTries) {
-        url = sanitizeUrl(url);
-        if (!tryIncVal(url, 0, urlToDownloads)) return false;
+        url = UrlCanonicalizer.escape(url);
+        String key = canonicalizeUrl(url);
+        if (draining) {
+            return defer(
+                CrawlTask.download(url, filename, referer, cookies, timeoutMillis, maxTries),
+                key, urlToDownloads);
+        }
+        if (!tryIncVal(key, 0, urlToDownloads)) return false;
         enqueueDownload(url, filename, referer, cookies, timeoutMillis, maxTries);
         return true;
     }
     
     public boolean retryDownload(String url, String filename, String referer, String cookies,
                                  int timeoutMillis, int maxTries) {
-        url = sanitizeUrl(url);
-        if (!tryIncVal(url, maxTries, urlToDownloads)) return false;
+        url = UrlCanonicalizer.escape(url);
+        if (!tryIncVal(canonicalizeUrl(url), maxTries, urlToDownloads)) return false;
         enqueueDownload(url, filename, referer, cookies, timeoutMillis, maxTries);
         return true;
     }
 
+    // Waits for all jobs, including newly discovered ones, to complete.
     public void shutdown() {
-        logger.atWarning().log("Waiting for all jobs to complete ...");
-        phaser.arriveAndAwaitAdvance();
+        shutdown(0, "");
+    }
+
+    // Waits for all jobs to complete, reporting progress periodically. Once stop() is called, new
+    // discoveries are no longer queued and queued jobs get at most drainMillis more to complete.
+    // Jobs which didn't complete and discoveries which weren't queued are then saved to
+    // checkpointFile, if it's not empty, so resume() can continue with them later.
+    // Returns true if nothing was left.
+    public boolean shutdown(long drainMillis, String checkpointFile) {
+        // Keeps the log handlers open until the drain below is done, see DeferredResetLogManager.
+        DeferredResetLogManager.deferResetUntil(terminated);
+        // Released whatever happens, stop() and the log reset wait for it in shutdown hooks.
+        try {
+            logger.atWarning().log("Waiting for all jobs to complete ...");
+            boolean completed = awaitJobs(drainMillis);
+            if (completed) {
+                executor.shutdown();
+            } else {
+                executor.shutdownNow();
+            }
+            LinkedHashSet<CrawlTask> remaining = new LinkedHashSet<>(pendingTasks.keySet());
+            remaining.addAll(deferredTasks);
+            if (!checkpointFile.isEmpty()) {
+                writeCheckpoint(checkpointFile, seenTasks(remaining), remaining);
+            } else if (!remaining.isEmpty()) {
+                logger.atWarning().log("Dropped %d unfinished jobs.", remaining.size());
+            }
+            logSummary();
+            if (this.logWriter != null) {
+                this.logWriter.close();
+            }
+            return remaining.isEmpty();
+        } finally {
+            terminated.countDown();
+        }
+    }
+
+    // Makes shutdown() stop accepting new discoveries and drain. Blocks until shutdown() returns,
+    // so it can be called from a shutdown hook.
+    public void stop() {
+        stopRequested = true;
+        try {
+            terminated.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private boolean awaitJobs(long drainMillis) {
+        int phase = phaser.arrive();
+        long drainDeadline = Long.MAX_VALUE;
+        long nextProgress = System.currentTimeMillis() + PROGRESS_INTERVAL_MILLIS;
+        while (true) {
+            long now = System.currentTimeMillis();
+            if (stopRequested && !draining) {
+                draining = true;
+                drainDeadline = now + drainMillis;
+                logger.atWarning().log(
+                    "Stopping: draining %d jobs for at most %d ms.", pendingJobs(), drainMillis);
+                // Drains are short, report them live.
+                nextProgress = now;
+            }
+            if (now >= drainDeadline) {
+                logger.atWarning().log("Drain deadline reached with %d jobs left.", pendingJobs());
+                return false;
+            }
+            if (now >= nextProgress) {
+                logger.atInfo().log(
+                    "%d jobs left, crawled %d URLs, downloaded %d files, deferred %d jobs.",
+                    pendingJobs(), crawledUrls(), downloadedFiles(), deferredTasks.size());
+                nextProgress = now +
+                    (draining ? DRAIN_PROGRESS_INTERVAL_MILLIS : PROGRESS_INTERVAL_MILLIS);
+            }
+            try {
+                phaser.awaitAdvanceInterruptibly(
+                    phase, Math.min(POLL_INTERVAL_MILLIS, drainDeadline - now),
+                    TimeUnit.MILLISECONDS);
+                return true;
+            } catch (TimeoutException e) {
+                // Check again.
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                stopRequested = true;
+            }
+        }
+    }
+
+    private int pendingJobs() {
+        return Math.max(0, phaser.getUnarrivedParties());
+    }
+
+    // Seen URLs, except the ones of remaining tasks so resume() queues those again.
+    private ArrayList<CrawlTask> seenTasks(Collection<CrawlTask> remaining) {
+        HashSet<String> remainingCrawls = new HashSet<>();
+        HashSet<String> remainingDownloads = new HashSet<>();
+        for (CrawlTask task : remaining) {
+            String key = canonicalizeUrl(task.url());
+            if (task.kind().equals(CrawlTask.DOWNLOAD)) {
+                remainingDownloads.add(key);
+            } else {
+                remainingCrawls.add(key);
+            }
+        }
+        ArrayList<CrawlTask> seen = new ArrayList<>();
+        lock.lock();
+        for (String key : urlToCrawls.keySet()) {
+            if (!remainingCrawls.contains(key)) seen.add(CrawlTask.seen(CrawlTask.CRAWLED, key));
+        }
+        for (String key : urlToDownloads.keySet()) {
+            if (!remainingDownloads.contains(key)) {
+                seen.add(CrawlTask.seen(CrawlTask.DOWNLOADED, key));
+            }
+        }
+        lock.unlock();
+        return seen;
+    }
+
+    // Writes to a temporary file first, so a crash can't leave a truncated checkpoint behind.
+    private void writeCheckpoint(String checkpointFile, Collection<CrawlTask> seen,
+                                 Collection<CrawlTask> tasks) {
+        try {
+            Path path = Paths.get(checkpointFile).toAbsolutePath();
+            Path tmp = path.resolveSibling(path.getFileName() + ".tmp");
+            try (PrintWriter writer = new PrintWriter(
+                    Files.newBufferedWriter(tmp, StandardCharsets.UTF_8))) {
+                // Seen URLs go first, so they are known before resumed tasks discover them.
+                for (CrawlTask task : seen) writer.println(task.toJson());
+                for (CrawlTask task : tasks) writer.println(task.toJson());
+                if (writer.checkError()) throw new IOException("Failed to write " + tmp);
+            }
+            Files.move(tmp, path, StandardCopyOption.REPLACE_EXISTING,
+                       StandardCopyOption.ATOMIC_MOVE);
+            logger.atInfo().log("Saved %d jobs and %d seen URLs to '%s'.",
+                                tasks.size(), seen.size(), checkpointFile);
+        } catch (IOException | InvalidPathException e) {
+            logger.atSevere().withCause(e).log(
+                "Failed to save %d jobs to '%s'.", tasks.size(), checkpointFile);
+        }
+    }
+
+    private void markSeen(String key, HashMap<String, Integer> map) {
+        lock.lock();
+        map.put(key, Integer.MAX_VALUE);
+        lock.unlock();
+    }
+
+    private boolean defer(CrawlTask task, String key, HashMap<String, Integer> map) {
+        lock.lock();
+        if (!map.containsKey(key)) deferredTasks.add(task);
+        lock.unlock();
+        return false;
+    }
+
+    private void logSummary() {
         logger.atInfo().log("Successfully crawled %d URLs.", crawledUrls());
         if (!failedCrawls.isEmpty()) {
             logger.atWarning().log("Failed to crawl %d URLs:", failedCrawls.size());
@@ -102,16 +374,42 @@ public class Crawler {
             Iterator<String> it = failedDownloads.iterator();
             while (it.hasNext()) logger.atWarning().log("\t" + it.next());
         }
-        executor.shutdown();
-        if (this.logWriter != null) {
-            this.logWriter.close();
-        }
     }
 
     private void crawlUrl(String url, int timeoutMillis, int maxTries) {
-        logger.atInfo().log("Crawling '%s'...", url);
+        logger.atInfo().atMostEvery(1, TimeUnit.SECONDS).log("Crawling '%s'...", url);
         try {
-            Document doc = Jsoup.parse(new URL(url), timeoutMillis);
+            URL urlObj = new URL(url);
+            long deadlineNanos = requestDeadlineNanos();
+            HttpURLConnection conn;
+            // Redirects are followed here, HttpURLConnection doesn't follow http -> https.
+            for (int redirects = 0; ; redirects++) {
+                checkDeadline(deadlineNanos, url);
+                conn = (HttpURLConnection)urlObj.openConnection();
+                conn.setInstanceFollowRedirects(false);
+                setTimeouts(conn, timeoutMillis, deadlineNanos);
+                conn.addRequestProperty("User-Agent", PAGE_USER_AGENT);
+                conn.addRequestProperty("Accept-Encoding", "identity");
+                int code = conn.getResponseCode();
+                if (code == HttpURLConnection.HTTP_OK) break;
+                String location = conn.getHeaderField("Location");
+                String message = conn.getResponseMessage();
+                conn.disconnect();
+                if (!isRedirect(code) || location == null) {
+                    throw new IOException("HTTP " + code + " " + message);
+                }
+                if (redirects >= MAX_REDIRECTS) {
+                    throw new IOException("Too many redirects for '" + url + "'");
+                }
+                urlObj = new URL(urlObj, UrlCanonicalizer.escape(location));
+            }
+            Document doc;
+            // Parse straight from the throttled stream, page crawls yield to downloads.
+            try (InputStream in = new ThrottledInputStream(
+                    conn.getInputStream(), bandwidth, hostBandwidth(urlObj.getHost()), true,
+                    deadlineNanos)) {
+                doc = Jsoup.parse(in, charset(conn.getContentType()), conn.getURL().toString());
+            }
             for (Handler handler : handlers) {
                 if (handler.Handle(url, doc, this)) {
                     logger.atFine().log("[%s] Handled '%s'.", handler.name(), url);
@@ -121,6 +419,7 @@ public class Crawler {
         } catch (MalformedURLException e) {
             logger.atWarning().withCause(e).log("Invalid URL '%s'.", url);
         } catch (IOException e) {
+            if (leftToCheckpoint(url)) return;
             logger.atWarning().withCause(e).log("Failed to crawl '%s'.", url);
             if (!retryCrawl(url, timeoutMillis, maxTries)) {
                 logger.atWarning().log("Max tries reached for '%s'.", url);
@@ -129,17 +428,52 @@ public class Crawler {
         }
     }
 
+    private static boolean isRedirect(int code) {
+        switch (code) {
+            case HttpURLConnection.HTTP_MOVED_PERM:
+            case HttpURLConnection.HTTP_MOVED_TEMP:
+            case HttpURLConnection.HTTP_SEE_OTHER:
+            case 307:  // Temporary Redirect
+            case 308:  // Permanent Redirect
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    // Returns the charset in a Content-Type header, or null to let jsoup detect it.
+    private static String charset(String contentType) {
+        if (contentType == null) return null;
+        int i = contentType.toLowerCase(Locale.ROOT).indexOf("charset=");
+        if (i < 0) return null;
+        int start = i + "charset=".length();
+        int end = contentType.indexOf(';', start);
+        if (end < 0) end = contentType.length();
+        String charset = contentType.substring(start, end).trim();
+        if (charset.length() >= 2 && charset.startsWith("\"") && charset.endsWith("\"")) {
+            charset = charset.substring(1, charset.length() - 1);
+        }
+        try {
+            return Charset.isSupported(charset) ? charset : null;
+        } catch (IllegalCharsetNameException e) {
+            return null;
+        }
+    }
+
     private void downloadUrl(String url, String filename, String referer, String cookies,
                              int timeoutMillis, int maxTries) {
         Path path = Paths.get(downloadRoot, filename);
+        long deadlineNanos = requestDeadlineNanos();
         try {
             path.getParent().toFile().mkdirs();
 
             while (true) {
-                logger.atInfo().log("Downloading '%s'...", url);
+                checkDeadline(deadlineNanos, url);
+                logger.atInfo().atMostEvery(1, TimeUnit.SECONDS)
+                      .log("Downloading '%s'...", url);
                 URL urlObj = new URL(url);
                 HttpURLConnection conn = (HttpURLConnection)urlObj.openConnection();
-                conn.setReadTimeout(timeoutMillis);
+                setTimeouts(conn, timeoutMillis, deadlineNanos);
                 conn.addRequestProperty("Host", urlObj.getHost());
                 conn.addRequestProperty("User-Agent", "Wget/1.19.4 (linux-gnu)");
                 conn.addRequestProperty("Accept", "*/*");
@@ -148,15 +482,16 @@ public class Crawler {
                 if (!cookies.isEmpty()) conn.addRequestProperty("Cookie", cookies);
                 switch (conn.getResponseCode()) {
                     case HttpURLConnection.HTTP_OK:
-                        Files.copy(
-                            conn.getInputStream(), path, StandardCopyOption.REPLACE_EXISTING);
-                        if (logWriter != null) logDownloadedFile(url, filename);
+                        copyWithBandwidth(conn.getInputStream(), path,
+                                          hostBandwidth(urlObj.getHost()), deadlineNanos);
+                        if (logWriter != null) logDownloadedFile(canonicalizeUrl(url), filename);
                         return;
                     case HttpURLConnection.HTTP_MOVED_TEMP:
                     case HttpURLConnection.HTTP_MOVED_PERM:
                     case HttpURLConnection.HTTP_SEE_OTHER:
                         referer = url;
-                        url = sanitizeUrl(conn.getHeaderField("Location"));
+                        url = UrlCanonicalizer.escape(
+                            new URL(urlObj, conn.getHeaderField("Location")).toString());
                         String newCookies = conn.getHeaderField("Set-Cookie");
                         if (!newCookies.isEmpty()) cookies = newCookies;
                         break;
@@ -175,6 +510,7 @@ public class Crawler {
         } catch (MalformedURLException e) {
             logger.atWarning().withCause(e).log("Invalid download URL '%s'.", url);
         } catch (IOException e) {
+            if (leftToCheckpoint(url)) return;
             logger.atWarning().withCause(e).log("Failed to download '%s'.", url);
             if (!retryDownload(url, filename, referer, cookies, timeoutMillis, maxTries)) {
                 logger.atWarning().log("Max tries reached for '%s'.", url);
@@ -183,23 +519,101 @@ public class Crawler {
         }
     }
 
+    // Jobs interrupted by shutdown() giving up on the drain aren't failures, execute() puts them
+    // back so they are saved to the checkpoint.
+    private static boolean leftToCheckpoint(String url) {
+        if (!Thread.currentThread().isInterrupted()) return false;
+        logger.atInfo().log("Interrupted '%s', leaving it to the checkpoint.", url);
+        return true;
+    }
+
+    private void copyWithBandwidth(InputStream in, Path path, BandwidthLimiter hostBandwidth,
+                                   long deadlineNanos) throws IOException {
+        try (InputStream input = new ThrottledInputStream(
+                in, bandwidth, hostBandwidth, false, deadlineNanos)) {
+            Files.copy(input, path, StandardCopyOption.REPLACE_EXISTING);
+        }
+    }
+
+    private long requestDeadlineNanos() {
+        return requestDeadlineMillis > 0 ?
+            System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(requestDeadlineMillis) :
+            Long.MAX_VALUE;
+    }
+
+    // Caps the connect and read timeouts by the time left until deadlineNanos, so a stalled
+    // connect or read can't overrun the request deadline. Called for every redirect hop.
+    private void setTimeouts(HttpURLConnection conn, int timeoutMillis, long deadlineNanos) {
+        int connectTimeout = connectTimeoutMillis > 0 ? connectTimeoutMillis : timeoutMillis;
+        int readTimeout = timeoutMillis;
+        if (deadlineNanos != Long.MAX_VALUE) {
+            // At least 1, 0 means no timeout.
+            int left = (int)Math.max(1, Math.min(Integer.MAX_VALUE,
+                TimeUnit.NANOSECONDS.toMillis(deadlineNanos - System.nanoTime())));
+            connectTimeout = connectTimeout > 0 ? Math.min(connectTimeout, left) : left;
+            readTimeout = readTimeout > 0 ? Math.min(readTimeout, left) : left;
+        }
+        conn.setConnectTimeout(connectTimeout);
+        conn.setReadTimeout(readTimeout);
+    }
+
+    private static void checkDeadline(long deadlineNanos, String what)
+            throws SocketTimeoutException {
+        if (System.nanoTime() - deadlineNanos > 0) {
+            throw new SocketTimeoutException("Request deadline exceeded for " + what);
+        }
+    }
+
+    private BandwidthLimiter hostBandwidth(String host) {
+        host = host.toLowerCase(Locale.ROOT);
+        lock.lock();
+        BandwidthLimiter limiter = hostBandwidths.get(host);
+        lock.unlock();
+        return limiter;
+    }
+
     public void enqueueCrawl(String url, int timeoutMillis, int maxTries) {
-        phaser.register();
-        executor.execute(() -> {
-            crawlUrl(url, timeoutMillis, maxTries);
-            phaser.arrive();
-        });
-        logger.atInfo().log("Queued URL '%s'.", url);
+        CrawlTask task = CrawlTask.crawl(url, timeoutMillis, maxTries);
+        if (!execute(task, () -> crawlUrl(url, timeoutMillis, maxTries))) return;
+        logger.atInfo().atMostEvery(1, TimeUnit.SECONDS).log("Queued URL '%s'.", url);
     }
     
     public void enqueueDownload(String url, String filename, String referer, String cookies,
                                 int timeoutMillis, int maxTries) {
+        CrawlTask task =
+            CrawlTask.download(url, filename, referer, cookies, timeoutMillis, maxTries);
+        if (!execute(task, () -> downloadUrl(
+                url, filename, referer, cookies, timeoutMillis, maxTries))) {
+            return;
+        }
+        logger.atInfo().atMostEvery(1, TimeUnit.SECONDS)
+              .log("Queued URL '%s'(%s).", url, filename);
+    }
+
+    // Runs job on the executor, tracking it as pending until it completes. Returns false if the
+    // executor has been shut down, in which case the task is deferred.
+    private boolean execute(CrawlTask task, Runnable job) {
         phaser.register();
-        executor.execute(() -> {
-            downloadUrl(url, filename, referer, cookies, timeoutMillis, maxTries);
-            phaser.arrive();
-        });
-        logger.atInfo().log("Queued URL '%s'(%s).", url, filename);
+        pendingTasks.merge(task, 1, Integer::sum);
+        try {
+            executor.execute(() -> {
+                try {
+                    job.run();
+                } finally {
+                    // Interrupted by shutdownNow(). Added before removing it from pendingTasks,
+                    // so shutdown() sees the task in one of them.
+                    if (Thread.currentThread().isInterrupted()) deferredTasks.add(task);
+                    pendingTasks.computeIfPresent(task, (t, n) -> n > 1 ? n - 1 : null);
+                    phaser.arrive();
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            pendingTasks.computeIfPresent(task, (t, n) -> n > 1 ? n - 1 : null);
+            phaser.arriveAndDeregister();
+            deferredTasks.add(task);
+            return false;
+        }
     }
 
     private boolean tryIncVal(String key, int maxVal, HashMap<String, Integer> map) {
@@ -221,7 +635,7 @@ public class Crawler {
         lock.lock();
         crawls = urlToCrawls.size();
         lock.unlock();
-        return crawls - failedCrawls.size();
+        return crawls - failedCrawls.size() - restoredCrawls;
     }
 
     private int downloadedFiles() {
@@ -229,7 +643,7 @@ public class Crawler {
         lock.lock();
         downloads = urlToDownloads.size();
         lock.unlock();
-        return downloads - failedDownloads.size();
+        return downloads - failedDownloads.size() - restoredDownloads;
     }
 
     private synchronized void logDownloadedFile(String url, String file) {
@@ -246,14 +660,24 @@ public class Crawler {
         return builder.toString();
     }
 
-    private static String sanitizeUrl(String url) {
-        // TODO: Find a decent way to do this.
-        return url.replaceAll(" ", "%20");
+    // The key used for dedup and the download log. URLs are fetched and passed to handlers as
+    // given, see UrlCanonicalizer.escape.
+    private String canonicalizeUrl(String url) {
+        return UrlCanonicalizer.canonicalize(url, dropQueryParam);
+    }
+
+    private boolean ignoreQueryParam(String host, String param) {
+        for (Handler handler : handlers) {
+            if (handler.ignoreQueryParam(host, param)) return true;
+        }
+        return false;
     }
     
     private ExecutorService executor;
     private String downloadRoot;
     private ArrayList<Handler> handlers;
+    // Built once, canonicalizeUrl() runs for every crawl, download and retry.
+    private final BiPredicate<String, String> dropQueryParam;
     private Phaser phaser;
     private ReentrantLock lock;
     private HashMap<String, Integer> urlToCrawls;
@@ -262,6 +686,29 @@ public class Crawler {
     private ConcurrentLinkedDeque<String> failedDownloads;
     private ArrayList<DownloadedFile> downloadedFiles;
     private PrintWriter logWriter;
+    private BandwidthLimiter bandwidth;
+    private HashMap<String, BandwidthLimiter> hostBandwidths;
+    private volatile int connectTimeoutMillis;
+    private volatile int requestDeadlineMillis;
+    // Queued and running tasks, with the number of copies of each.
+    private ConcurrentHashMap<CrawlTask, Integer> pendingTasks;
+    // Tasks which weren't queued because we were draining or shut down.
+    private ConcurrentLinkedDeque<CrawlTask> deferredTasks;
+    // Seen URLs restored by resume(), which this run didn't crawl or download.
+    private int restoredCrawls;
+    private int restoredDownloads;
+    private volatile boolean stopRequested;
+    private volatile boolean draining;
+    private CountDownLatch terminated;
+
+    private static final String PAGE_USER_AGENT =
+        "Mozilla/5.0 (X11; Linux x86_64) AppleWebKit/537.36 (KHTML, like Gecko) " +
+        "Chrome/83.0.4103.116 Safari/537.36";
+    // Same limit as jsoup, which fetched pages before.
+    private static final int MAX_REDIRECTS = 20;
+    private static final long POLL_INTERVAL_MILLIS = 1000;
+    private static final long PROGRESS_INTERVAL_MILLIS = 30000;
+    private static final long DRAIN_PROGRESS_INTERVAL_MILLIS = 2000;
 
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 }
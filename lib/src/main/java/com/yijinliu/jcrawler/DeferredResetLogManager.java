@@ -0,0 +1,38 @@
+package com.yijinliu.jcrawler;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.LogManager;
+
+// A LogManager whose reset() waits for registered latches first. The default LogManager resets
+// (and so closes all handlers) from its own shutdown hook, which races with the hooks that drain
+// the crawler, so their progress logs would be lost. Install it before anything logs:
+//   System.setProperty("java.util.logging.manager", DeferredResetLogManager.class.getName());
+public class DeferredResetLogManager extends LogManager {
+    // Makes reset() wait until latch is counted down. Does nothing if this isn't the LogManager.
+    public static boolean deferResetUntil(CountDownLatch latch) {
+        LogManager manager = LogManager.getLogManager();
+        if (!(manager instanceof DeferredResetLogManager)) return false;
+        ((DeferredResetLogManager)manager).latches.add(latch);
+        return true;
+    }
+
+    @Override
+    public void reset() {
+        // Guards against calls made while LogManager is still being constructed.
+        if (latches != null) {
+            CountDownLatch latch;
+            while ((latch = latches.poll()) != null) {
+                try {
+                    latch.await();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    break;
+                }
+            }
+        }
+        super.reset();
+    }
+
+    final ConcurrentLinkedQueue<CountDownLatch> latches = new ConcurrentLinkedQueue<>();
+}
@@ -4,6 +4,12 @@ import org.jsoup.nodes.Document;
 
 public interface Handler {
     public String name();
-    // Returns true if it's handled.
+    // Returns true if it's handled. Implementations should query doc with static CompiledSelectors
+    // rather than query strings.
     public boolean Handle(String url, Document doc, Crawler crawler);
+    // Returns true if the query parameter doesn't change the page on host, so it's dropped when
+    // URLs are canonicalized.
+    public default boolean ignoreQueryParam(String host, String param) {
+        return false;
+    }
 }
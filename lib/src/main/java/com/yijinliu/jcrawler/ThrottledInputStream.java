@@ -0,0 +1,73 @@
+package com.yijinliu.jcrawler;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.net.SocketTimeoutException;
+
+// Takes tokens from a global and an optional per-host BandwidthLimiter before each read, so the
+// transfer is shaped while it happens. Reads are split into chunks of at most CHUNK_SIZE bytes.
+// Also fails reads once deadlineNanos (System.nanoTime()) has passed.
+class ThrottledInputStream extends FilterInputStream {
+
+    public ThrottledInputStream(InputStream in, BandwidthLimiter bandwidth,
+                                BandwidthLimiter hostBandwidth, boolean yieldToDownloads,
+                                long deadlineNanos) {
+        super(in);
+        this.bandwidth = bandwidth;
+        this.hostBandwidth = hostBandwidth;
+        this.yieldToDownloads = yieldToDownloads;
+        this.deadlineNanos = deadlineNanos;
+    }
+
+    @Override
+    public int read() throws IOException {
+        byte[] b = new byte[1];
+        int n = read(b, 0, 1);
+        return n < 0 ? -1 : b[0] & 0xFF;
+    }
+
+    @Override
+    public int read(byte[] b, int off, int len) throws IOException {
+        if (len == 0) return 0;
+        if (System.nanoTime() - deadlineNanos > 0) {
+            throw new SocketTimeoutException("Request deadline exceeded");
+        }
+        len = Math.min(len, CHUNK_SIZE);
+        try {
+            bandwidth.acquire(len, yieldToDownloads);
+            if (hostBandwidth != null) hostBandwidth.acquire(len, yieldToDownloads);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for bandwidth");
+        }
+        int n = in.read(b, off, len);
+        // Give back what the read didn't use.
+        int unused = len - Math.max(n, 0);
+        if (unused > 0) {
+            bandwidth.consume(-unused);
+            if (hostBandwidth != null) hostBandwidth.consume(-unused);
+        }
+        return n;
+    }
+
+    @Override
+    public long skip(long n) throws IOException {
+        byte[] b = new byte[(int)Math.min(n, CHUNK_SIZE)];
+        long skipped = 0;
+        while (skipped < n) {
+            int r = read(b, 0, (int)Math.min(n - skipped, b.length));
+            if (r < 0) break;
+            skipped += r;
+        }
+        return skipped;
+    }
+
+    public static final int CHUNK_SIZE = 16 * 1024;
+
+    private final BandwidthLimiter bandwidth;
+    private final BandwidthLimiter hostBandwidth;
+    private final boolean yieldToDownloads;
+    private final long deadlineNanos;
+}
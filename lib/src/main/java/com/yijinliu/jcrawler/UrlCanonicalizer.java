@@ -0,0 +1,280 @@
+package com.yijinliu.jcrawler;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.function.BiPredicate;
+
+// Turns URLs into one canonical form, so URLs that only differ in fragment, default port, case of
+// scheme/host, percent-encoding or query parameter order are treated as the same URL:
+//  - scheme and host are lowercased, and the default port is dropped;
+//  - an empty path becomes "/";
+//  - percent-escapes use uppercase hex, escaped unreserved characters are decoded, and characters
+//    which aren't allowed in URLs (like spaces) are escaped as UTF-8;
+//  - query parameters are sorted by name, and the ones dropParam accepts are removed;
+//  - the fragment is removed.
+// The canonical form is only meant as a key for dedup and routing. Some sites care about the
+// order or presence of query parameters, so use escape() for the URL which is actually fetched.
+// Both return the same String instance if nothing needed changing.
+public final class UrlCanonicalizer {
+
+    // Only escapes characters which aren't allowed in URLs (like spaces) as UTF-8 and trims
+    // whitespace, leaving everything else as is.
+    public static String escape(String url) {
+        int len = url.length();
+        int start = 0;
+        while (start < len && url.charAt(start) <= ' ') start++;
+        while (len > start && url.charAt(len - 1) <= ' ') len--;
+        StringBuilder builder = null;
+        for (int i = start; i < len; i++) {
+            char c = url.charAt(i);
+            if (c < 0x80 && (isAllowed(c, true) || c == '%' || c == '#')) {
+                if (builder != null) builder.append(c);
+                continue;
+            }
+            if (builder == null) {
+                builder = new StringBuilder(len - start + 16);
+                builder.append(url, start, i);
+            }
+            int cp = url.codePointAt(i);
+            if (Character.isSupplementaryCodePoint(cp)) i++;
+            appendUtf8(builder, cp);
+        }
+        if (builder != null) return builder.toString();
+        return start == 0 && len == url.length() ? url : url.substring(start, len);
+    }
+
+    public static String canonicalize(String url) {
+        return canonicalize(url, null);
+    }
+
+    // dropParam is called with the (lowercased) host and the parameter name.
+    public static String canonicalize(String url, BiPredicate<String, String> dropParam) {
+        int len = url.length();
+        int start = 0;
+        while (start < len && url.charAt(start) <= ' ') start++;
+        while (len > start && url.charAt(len - 1) <= ' ') len--;
+
+        int fragment = url.indexOf('#', start);
+        if (fragment < 0 || fragment > len) fragment = len;
+        int schemeEnd = schemeEnd(url, start, fragment);
+        if (schemeEnd < 0) {
+            StringBuilder builder = new StringBuilder(fragment - start);
+            appendEncoded(builder, url, start, fragment, false);
+            return sameOrNew(url, builder);
+        }
+
+        StringBuilder builder = new StringBuilder(fragment - start + 8);
+        for (int i = start; i < schemeEnd; i++) builder.append(toLower(url.charAt(i)));
+        String scheme = builder.toString();
+        builder.append(':');
+
+        int pos = schemeEnd + 1;
+        String host = "";
+        boolean hasAuthority = url.startsWith("//", pos);
+        if (hasAuthority) {
+            pos += 2;
+            int authorityEnd = pos;
+            while (authorityEnd < fragment) {
+                char c = url.charAt(authorityEnd);
+                if (c == '/' || c == '?') break;
+                authorityEnd++;
+            }
+            builder.append("//");
+            host = appendAuthority(builder, url, pos, authorityEnd, scheme);
+            pos = authorityEnd;
+        }
+
+        int queryStart = url.indexOf('?', pos);
+        if (queryStart < 0 || queryStart > fragment) queryStart = fragment;
+        if (hasAuthority && pos == queryStart) {
+            builder.append('/');
+        } else {
+            appendEncoded(builder, url, pos, queryStart, false);
+        }
+
+        if (queryStart < fragment) {
+            appendQuery(builder, url, queryStart + 1, fragment, host, dropParam);
+        }
+        return sameOrNew(url, builder);
+    }
+
+    // Returns the index of ':' ending a valid scheme, or -1.
+    private static int schemeEnd(String url, int start, int end) {
+        for (int i = start; i < end; i++) {
+            char c = url.charAt(i);
+            if (c == ':') return i > start ? i : -1;
+            boolean valid = (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') ||
+                (i > start && ((c >= '0' && c <= '9') || c == '+' || c == '-' || c == '.'));
+            if (!valid) return -1;
+        }
+        return -1;
+    }
+
+    // Appends userinfo@host:port and returns the lowercased host.
+    private static String appendAuthority(
+            StringBuilder builder, String url, int start, int end, String scheme) {
+        int at = url.lastIndexOf('@', end - 1);
+        if (at >= start) {
+            appendEncoded(builder, url, start, at, false);
+            builder.append('@');
+            start = at + 1;
+        }
+        int colon = -1;
+        for (int i = end - 1; i >= start; i--) {
+            char c = url.charAt(i);
+            if (c == ':') {
+                colon = i;
+                break;
+            }
+            // IPv6 literals contain colons but no port.
+            if (c == ']' || c < '0' || c > '9') break;
+        }
+        int hostEnd = colon < 0 ? end : colon;
+        int hostStart = builder.length();
+        for (int i = start; i < hostEnd; i++) builder.append(toLower(url.charAt(i)));
+        String host = builder.substring(hostStart);
+        if (colon >= 0 && colon + 1 < end) {
+            int port = 0;
+            for (int i = colon + 1; i < end && port <= 65535; i++) {
+                port = port * 10 + (url.charAt(i) - '0');
+            }
+            if (port != defaultPort(scheme)) builder.append(url, colon, end);
+        }
+        return host;
+    }
+
+    private static int defaultPort(String scheme) {
+        switch (scheme) {
+            case "http":
+                return 80;
+            case "https":
+                return 443;
+            case "ftp":
+                return 21;
+            default:
+                return -1;
+        }
+    }
+
+    private static void appendQuery(StringBuilder builder, String url, int start, int end,
+                                    String host, BiPredicate<String, String> dropParam) {
+        // Parameters and the index of the end of their names, sorted as they are added.
+        String[] params = new String[8];
+        int[] nameEnds = new int[8];
+        int count = 0;
+        StringBuilder param = new StringBuilder();
+        int pos = start;
+        while (pos <= end) {
+            int amp = url.indexOf('&', pos);
+            if (amp < 0 || amp > end) amp = end;
+            if (amp > pos) {
+                param.setLength(0);
+                appendEncoded(param, url, pos, amp, true);
+                int nameEnd = param.indexOf("=");
+                if (nameEnd < 0) nameEnd = param.length();
+                if (dropParam == null || !dropParam.test(host, param.substring(0, nameEnd))) {
+                    if (count == params.length) {
+                        params = Arrays.copyOf(params, count * 2);
+                        nameEnds = Arrays.copyOf(nameEnds, count * 2);
+                    }
+                    String p = param.toString();
+                    // Insertion sort, stable so repeated parameters keep their order. Queries
+                    // rarely have more than a few parameters.
+                    int i = count++;
+                    while (i > 0 && compareNames(params[i - 1], nameEnds[i - 1], p, nameEnd) > 0) {
+                        params[i] = params[i - 1];
+                        nameEnds[i] = nameEnds[i - 1];
+                        i--;
+                    }
+                    params[i] = p;
+                    nameEnds[i] = nameEnd;
+                }
+            }
+            pos = amp + 1;
+        }
+        if (count == 0) return;
+        builder.append('?');
+        for (int i = 0; i < count; i++) {
+            if (i > 0) builder.append('&');
+            builder.append(params[i]);
+        }
+    }
+
+    // Compares a.substring(0, aEnd) with b.substring(0, bEnd) without creating them.
+    private static int compareNames(String a, int aEnd, String b, int bEnd) {
+        int n = Math.min(aEnd, bEnd);
+        for (int i = 0; i < n; i++) {
+            int diff = a.charAt(i) - b.charAt(i);
+            if (diff != 0) return diff;
+        }
+        return aEnd - bEnd;
+    }
+
+    private static void appendEncoded(
+            StringBuilder builder, String s, int start, int end, boolean inQuery) {
+        for (int i = start; i < end; i++) {
+            char c = s.charAt(i);
+            if (c == '%' && i + 2 < end && isHex(s.charAt(i + 1)) && isHex(s.charAt(i + 2))) {
+                int b = (hexValue(s.charAt(i + 1)) << 4) | hexValue(s.charAt(i + 2));
+                if (isUnreserved(b)) {
+                    builder.append((char)b);
+                } else {
+                    builder.append('%').append(HEX[b >> 4]).append(HEX[b & 0xF]);
+                }
+                i += 2;
+            } else if (c < 0x80 && isAllowed(c, inQuery)) {
+                builder.append(c);
+            } else {
+                int cp = s.codePointAt(i);
+                if (Character.isSupplementaryCodePoint(cp)) i++;
+                appendUtf8(builder, cp);
+            }
+        }
+    }
+
+    private static void appendUtf8(StringBuilder builder, int cp) {
+        for (byte b : new String(Character.toChars(cp)).getBytes(StandardCharsets.UTF_8)) {
+            builder.append('%').append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+        }
+    }
+
+    private static boolean isUnreserved(int c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9') ||
+            c == '-' || c == '.' || c == '_' || c == '~';
+    }
+
+    // Unreserved, sub-delims and the gen-delims allowed in paths and queries.
+    private static boolean isAllowed(char c, boolean inQuery) {
+        if (isUnreserved(c)) return true;
+        switch (c) {
+            case '!': case '$': case '&': case '\'': case '(': case ')': case '*': case '+':
+            case ',': case ';': case '=': case ':': case '@': case '/':
+                return true;
+            case '?':
+                return inQuery;
+            default:
+                return false;
+        }
+    }
+
+    private static boolean isHex(char c) {
+        return (c >= '0' && c <= '9') || (c >= 'a' && c <= 'f') || (c >= 'A' && c <= 'F');
+    }
+
+    private static int hexValue(char c) {
+        if (c <= '9') return c - '0';
+        return (c | 0x20) - 'a' + 10;
+    }
+
+    private static char toLower(char c) {
+        return c >= 'A' && c <= 'Z' ? (char)(c + ('a' - 'A')) : c;
+    }
+
+    private static String sameOrNew(String url, StringBuilder builder) {
+        return url.contentEquals(builder) ? url : builder.toString();
+    }
+
+    private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+
+    private UrlCanonicalizer() {}
+}
@@ -0,0 +1,135 @@
+package com.yijinliu.jcrawler;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+// Publishes the same records from THREADS threads through AnsiColorConsoleHandler and
+// AsyncAnsiColorConsoleHandler and reports the time the publishing threads spend in publish().
+// Both write to a file, so every flush is a real write like on a console. The async queue holds
+// all records, so nothing is dropped and both handlers do the same work.
+// Not run by default, run it with:
+//   mvn -B -pl lib test -Dtest=AsyncAnsiColorConsoleHandlerBenchmark
+public class AsyncAnsiColorConsoleHandlerBenchmark extends TestCase {
+    public AsyncAnsiColorConsoleHandlerBenchmark(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AsyncAnsiColorConsoleHandlerBenchmark.class);
+    }
+
+    public void testBenchmark() throws IOException, InterruptedException {
+        // Warm up both, then measure.
+        runSync(RECORDS_PER_THREAD / 10);
+        runAsync(RECORDS_PER_THREAD / 10);
+        Result sync = runSync(RECORDS_PER_THREAD);
+        Result async = runAsync(RECORDS_PER_THREAD);
+        System.out.printf(
+            "%d threads x %d records: sync %d ms in publish (%d ms total), " +
+            "async %d ms in publish (%d ms total including flush)%n",
+            THREADS, RECORDS_PER_THREAD, sync.publishMillis, sync.totalMillis,
+            async.publishMillis, async.totalMillis);
+        assertEquals(THREADS * RECORDS_PER_THREAD, sync.written);
+        assertEquals(THREADS * RECORDS_PER_THREAD, async.written);
+    }
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        junit.textui.TestRunner.run(suite());
+    }
+
+    private static Result runSync(int recordsPerThread) throws IOException, InterruptedException {
+        File file = File.createTempFile("sync", ".log");
+        file.deleteOnExit();
+        PrintStream err = System.err;
+        // AnsiColorConsoleHandler always prints to System.err.
+        try (PrintStream out = new PrintStream(new FileOutputStream(file))) {
+            System.setErr(out);
+            AnsiColorConsoleHandler handler = new AnsiColorConsoleHandler();
+            handler.setFormatter(new SimpleFormatter());
+            Result result = run(handler, recordsPerThread);
+            handler.flush();
+            result.totalMillis = (System.nanoTime() - result.startNanos) / 1000000;
+            result.written = count(file);
+            return result;
+        } finally {
+            System.setErr(err);
+        }
+    }
+
+    private static Result runAsync(int recordsPerThread) throws IOException, InterruptedException {
+        File file = File.createTempFile("async", ".log");
+        file.deleteOnExit();
+        try (PrintStream out = new PrintStream(new FileOutputStream(file))) {
+            AsyncAnsiColorConsoleHandler handler =
+                new AsyncAnsiColorConsoleHandler(out, THREADS * recordsPerThread);
+            handler.setFormatter(new SimpleFormatter());
+            Result result = run(handler, recordsPerThread);
+            handler.flush();
+            result.totalMillis = (System.nanoTime() - result.startNanos) / 1000000;
+            handler.close();
+            result.written = count(file);
+            return result;
+        }
+    }
+
+    private static Result run(java.util.logging.Handler handler, int recordsPerThread)
+            throws InterruptedException {
+        Result result = new Result();
+        AtomicLong publishNanos = new AtomicLong();
+        CountDownLatch start = new CountDownLatch(1);
+        Thread[] threads = new Thread[THREADS];
+        for (int t = 0; t < THREADS; t++) {
+            int id = t;
+            threads[t] = new Thread(() -> {
+                try {
+                    start.await();
+                } catch (InterruptedException e) {
+                    return;
+                }
+                long begin = System.nanoTime();
+                for (int i = 0; i < recordsPerThread; i++) {
+                    handler.publish(new LogRecord(
+                        Level.INFO, "benchmark-message thread " + id + " record " + i));
+                }
+                publishNanos.addAndGet(System.nanoTime() - begin);
+            });
+            threads[t].start();
+        }
+        result.startNanos = System.nanoTime();
+        start.countDown();
+        for (Thread thread : threads) thread.join();
+        result.publishMillis = publishNanos.get() / 1000000;
+        return result;
+    }
+
+    private static int count(File file) throws IOException {
+        int count = 0;
+        for (String line : Files.readAllLines(file.toPath())) {
+            if (line.contains("benchmark-message")) count++;
+        }
+        return count;
+    }
+
+    private static class Result {
+        long startNanos;
+        // Summed over the publishing threads.
+        long publishMillis;
+        long totalMillis;
+        int written;
+    }
+
+    private static final int THREADS = 8;
+    private static final int RECORDS_PER_THREAD = 20000;
+}
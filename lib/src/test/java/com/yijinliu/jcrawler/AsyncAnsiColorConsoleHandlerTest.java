@@ -0,0 +1,116 @@
+package com.yijinliu.jcrawler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.util.concurrent.CountDownLatch;
+import java.util.logging.Level;
+import java.util.logging.LogRecord;
+import java.util.logging.SimpleFormatter;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class AsyncAnsiColorConsoleHandlerTest extends TestCase {
+    public AsyncAnsiColorConsoleHandlerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(AsyncAnsiColorConsoleHandlerTest.class);
+    }
+
+    public void testPublish() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AsyncAnsiColorConsoleHandler handler =
+            new AsyncAnsiColorConsoleHandler(new PrintStream(bytes), 1024);
+        handler.setFormatter(new SimpleFormatter());
+        handler.publish(new LogRecord(Level.WARNING, "warning-message"));
+        handler.publish(new LogRecord(Level.INFO, "info-message"));
+        handler.publish(new LogRecord(Level.FINE, "fine-message"));
+        handler.flush();
+        String out = bytes.toString();
+        assertTrue(out.contains("\u001b[93m"));
+        assertTrue(out.indexOf("warning-message") < out.indexOf("info-message"));
+        // Below ConsoleHandler's default level.
+        assertFalse(out.contains("fine-message"));
+        handler.close();
+    }
+
+    public void testDropsInfoWhenFull() throws InterruptedException {
+        BlockingOutputStream bytes = new BlockingOutputStream();
+        AsyncAnsiColorConsoleHandler handler =
+            new AsyncAnsiColorConsoleHandler(new PrintStream(bytes), 1);
+        handler.setFormatter(new SimpleFormatter());
+        handler.publish(new LogRecord(Level.INFO, "first"));
+        // The writer took "first" and is stuck printing it.
+        bytes.entered.await();
+        handler.publish(new LogRecord(Level.INFO, "second"));
+        for (int i = 0; i < 10; i++) {
+            handler.publish(new LogRecord(Level.INFO, "dropped-" + i));
+        }
+        bytes.release.countDown();
+        handler.flush();
+        handler.close();
+        String out = bytes.toString();
+        assertTrue(out.contains("first"));
+        assertTrue(out.contains("second"));
+        assertFalse(out.contains("dropped-"));
+        assertTrue(out.contains("Dropped 10 log records."));
+    }
+
+    public void testKeepsWarningsWhenFull() throws InterruptedException {
+        BlockingOutputStream bytes = new BlockingOutputStream();
+        AsyncAnsiColorConsoleHandler handler =
+            new AsyncAnsiColorConsoleHandler(new PrintStream(bytes), 1);
+        handler.setFormatter(new SimpleFormatter());
+        handler.publish(new LogRecord(Level.INFO, "first"));
+        bytes.entered.await();
+        handler.publish(new LogRecord(Level.INFO, "second"));
+        Thread warner = new Thread(() -> {
+            for (int i = 0; i < 5; i++) {
+                handler.publish(new LogRecord(Level.WARNING, "warning-" + i));
+            }
+        });
+        warner.start();
+        warner.join(200);
+        // Waits for room rather than dropping.
+        assertTrue(warner.isAlive());
+        bytes.release.countDown();
+        warner.join();
+        handler.flush();
+        handler.close();
+        String out = bytes.toString();
+        for (int i = 0; i < 5; i++) assertTrue(out.contains("warning-" + i));
+        assertFalse(out.contains("Dropped"));
+    }
+
+    public void testClose() {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        AsyncAnsiColorConsoleHandler handler =
+            new AsyncAnsiColorConsoleHandler(new PrintStream(bytes), 1024);
+        handler.setFormatter(new SimpleFormatter());
+        handler.publish(new LogRecord(Level.INFO, "before-close"));
+        handler.close();
+        handler.publish(new LogRecord(Level.INFO, "after-close"));
+        assertTrue(bytes.toString().contains("before-close"));
+        assertFalse(bytes.toString().contains("after-close"));
+    }
+
+    // Blocks the first write until release is counted down.
+    private static class BlockingOutputStream extends ByteArrayOutputStream {
+        final CountDownLatch entered = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            entered.countDown();
+            try {
+                release.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            super.write(b, off, len);
+        }
+    }
+}
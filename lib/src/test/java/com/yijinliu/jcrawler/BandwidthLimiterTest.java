@@ -0,0 +1,32 @@
+package com.yijinliu.jcrawler;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class BandwidthLimiterTest extends TestCase {
+    public BandwidthLimiterTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(BandwidthLimiterTest.class);
+    }
+
+    public void testUnlimited() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(0);
+        long start = System.nanoTime();
+        for (int i = 0; i < 1000; i++) limiter.acquire(1 << 20, false);
+        assertTrue(System.nanoTime() - start < 1000000000L);
+    }
+
+    public void testLimited() throws InterruptedException {
+        BandwidthLimiter limiter = new BandwidthLimiter(1 << 20);
+        assertEquals(1 << 20, limiter.bytesPerSecond());
+        long start = System.nanoTime();
+        // The bucket starts empty, so 256KB at 1MB/sec takes about 250ms.
+        for (int i = 0; i < 16; i++) limiter.acquire(16 * 1024, false);
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 200);
+    }
+}
@@ -0,0 +1,27 @@
+package com.yijinliu.jcrawler;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+import org.jsoup.Jsoup;
+import org.jsoup.nodes.Document;
+
+public class CompiledSelectorTest extends TestCase {
+    public CompiledSelectorTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(CompiledSelectorTest.class);
+    }
+
+    public void testSelect() {
+        Document doc = Jsoup.parse(
+            "<div class='files-new'><a href='a'>A</a><a href='b'>B</a></div><a href='c'>C</a>");
+        CompiledSelector selector = CompiledSelector.compile(".files-new a");
+        assertEquals(".files-new a", selector.query());
+        assertEquals(2, selector.select(doc).size());
+        assertEquals("A", selector.selectFirst(doc).text());
+        assertNull(CompiledSelector.compile(".missing").selectFirst(doc));
+    }
+}
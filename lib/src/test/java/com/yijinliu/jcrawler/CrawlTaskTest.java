@@ -0,0 +1,27 @@
+package com.yijinliu.jcrawler;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class CrawlTaskTest extends TestCase {
+    public CrawlTaskTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(CrawlTaskTest.class);
+    }
+
+    public void testJson() {
+        CrawlTask crawl = CrawlTask.crawl("test-url", 1000, 2);
+        assertEquals(CrawlTask.CRAWL, crawl.kind());
+        assertEquals(crawl, CrawlTask.fromJson(crawl.toJson()));
+
+        CrawlTask download =
+            CrawlTask.download("test-url", "test-file", "test-referer", "", 1000, 2);
+        assertEquals(CrawlTask.DOWNLOAD, download.kind());
+        assertEquals("test-file", download.file());
+        assertEquals(download, CrawlTask.fromJson(download.toJson()));
+    }
+}
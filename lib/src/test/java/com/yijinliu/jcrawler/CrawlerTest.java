@@ -1,5 +1,24 @@
 package com.yijinliu.jcrawler;
 
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.LogRecord;
+import java.util.logging.Logger;
+
+import com.sun.net.httpserver.HttpServer;
+import org.jsoup.nodes.Document;
+
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
@@ -17,4 +36,173 @@ public class CrawlerTest extends TestCase {
         Crawler crawler = new Crawler(3, System.getProperty("java.io.tmpdir"), "");
         crawler.shutdown();
     }
+
+    public void testBadCheckpointPath() throws InterruptedException {
+        Crawler crawler = new Crawler(1, System.getProperty("java.io.tmpdir"), "");
+        assertTrue(crawler.shutdown(0, "bad\0checkpoint"));
+        // Must not block, shutdown hooks call it.
+        Thread stop = new Thread(crawler::stop);
+        stop.start();
+        stop.join(5000);
+        assertFalse(stop.isAlive());
+    }
+
+    public void testFollowsRedirects() throws IOException {
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), 0);
+        server.createContext("/old", exchange -> {
+            exchange.getResponseHeaders().add("Location", "/new");
+            exchange.sendResponseHeaders(301, -1);
+            exchange.close();
+        });
+        server.createContext("/new", exchange -> {
+            byte[] body = "<html><title>New</title></html>".getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().add("Content-Type", "text/html; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            exchange.getResponseBody().write(body);
+            exchange.close();
+        });
+        server.start();
+        try {
+            String prefix = "http://127.0.0.1:" + server.getAddress().getPort();
+            List<String> handled = new CopyOnWriteArrayList<>();
+            Crawler crawler = new Crawler(1, System.getProperty("java.io.tmpdir"), "");
+            crawler.addHandler(new Handler() {
+                public String name() {
+                    return "test";
+                }
+
+                public boolean Handle(String url, Document doc, Crawler crawler) {
+                    handled.add(url + " " + doc.location() + " " + doc.title());
+                    return true;
+                }
+            });
+            assertTrue(crawler.crawl(prefix + "/old", 10000, 1));
+            assertTrue(crawler.shutdown(0, ""));
+            assertEquals(Arrays.asList(prefix + "/old " + prefix + "/new New"), handled);
+        } finally {
+            server.stop(0);
+        }
+    }
+
+    public void testRequestDeadline() throws IOException {
+        // Accepts connections but never responds.
+        try (ServerSocket server = new ServerSocket(0)) {
+            String url = "http://127.0.0.1:" + server.getLocalPort() + "/file.pdf";
+            Crawler crawler = new Crawler(2, System.getProperty("java.io.tmpdir"), "");
+            crawler.setRequestDeadline(300);
+            long start = System.nanoTime();
+            assertTrue(crawler.crawl(url, 60000, 1));
+            assertTrue(crawler.download(url, "deadline.pdf", "", "", 60000, 1));
+            assertTrue(crawler.shutdown(0, ""));
+            assertTrue(System.nanoTime() - start < TimeUnit.SECONDS.toNanos(10));
+        }
+    }
+
+    public void testDrainAndResume() throws IOException {
+        // Accepts connections but never responds.
+        try (ServerSocket server = new ServerSocket(0)) {
+            String url = "http://127.0.0.1:" + server.getLocalPort() + "/page";
+            File checkpoint = File.createTempFile("checkpoint", ".json");
+            checkpoint.deleteOnExit();
+
+            Crawler crawler = new Crawler(1, System.getProperty("java.io.tmpdir"), "");
+            assertTrue(crawler.crawl(url, 60000, 1));
+            new Thread(crawler::stop).start();
+            assertFalse(crawler.shutdown(100, checkpoint.getPath()));
+            List<String> lines = Files.readAllLines(checkpoint.toPath());
+            assertEquals(1, lines.size());
+            assertEquals(url, CrawlTask.fromJson(lines.get(0)).url());
+
+            crawler = new Crawler(1, System.getProperty("java.io.tmpdir"), "");
+            assertEquals(1, crawler.resume(checkpoint.getPath()));
+            new Thread(crawler::stop).start();
+            assertFalse(crawler.shutdown(0, ""));
+        }
+    }
+
+    public void testDrainProgress() throws IOException {
+        List<String> progress = new CopyOnWriteArrayList<>();
+        java.util.logging.Handler handler = new java.util.logging.Handler() {
+            public void publish(LogRecord record) {
+                if (record.getMessage().contains("jobs left, crawled")) {
+                    progress.add(record.getMessage());
+                }
+            }
+
+            public void flush() {}
+
+            public void close() {}
+        };
+        Logger logger = Logger.getLogger(Crawler.class.getName());
+        logger.addHandler(handler);
+        // Accepts connections but never responds.
+        try (ServerSocket server = new ServerSocket(0)) {
+            Crawler crawler = new Crawler(1, System.getProperty("java.io.tmpdir"), "");
+            assertTrue(crawler.crawl(
+                "http://127.0.0.1:" + server.getLocalPort() + "/page", 60000, 1));
+            new Thread(crawler::stop).start();
+            assertFalse(crawler.shutdown(2500, ""));
+            // Right when the drain starts and 2 seconds later.
+            assertEquals(2, progress.size());
+        } finally {
+            logger.removeHandler(handler);
+        }
+    }
+
+    public void testInterruptedCrawlIsCheckpointed() throws IOException {
+        try (ServerSocket server = new ServerSocket(0)) {
+            // Serves a page which takes minutes at the bandwidth below.
+            Thread serverThread = new Thread(() -> {
+                try (Socket socket = server.accept()) {
+                    byte[] body = new byte[1024 * 1024];
+                    Arrays.fill(body, (byte)' ');
+                    OutputStream out = socket.getOutputStream();
+                    out.write(("HTTP/1.1 200 OK\r\nContent-Type: text/html\r\n" +
+                               "Content-Length: " + body.length + "\r\n\r\n").getBytes());
+                    out.write(body);
+                } catch (IOException e) {
+                    // The crawler gave up.
+                }
+            });
+            serverThread.setDaemon(true);
+            serverThread.start();
+            String url = "http://127.0.0.1:" + server.getLocalPort() + "/page";
+            File checkpoint = File.createTempFile("checkpoint", ".json");
+            checkpoint.deleteOnExit();
+
+            Crawler crawler = new Crawler(1, System.getProperty("java.io.tmpdir"), "");
+            crawler.setBandwidth(1024);
+            assertTrue(crawler.crawl(url, 60000, 1));
+            new Thread(crawler::stop).start();
+            assertFalse(crawler.shutdown(500, checkpoint.getPath()));
+            List<String> lines = Files.readAllLines(checkpoint.toPath());
+            assertEquals(1, lines.size());
+            assertEquals(CrawlTask.crawl(url, 60000, 1), CrawlTask.fromJson(lines.get(0)));
+        }
+    }
+
+    public void testResumeRejectsSeenUrls() throws IOException {
+        try (ServerSocket server = new ServerSocket(0)) {
+            // Nothing listens on port 1, so this fails fast but is still seen.
+            String seenUrl = "http://127.0.0.1:1/seen";
+            String pendingUrl = "http://127.0.0.1:" + server.getLocalPort() + "/page";
+            File checkpoint = File.createTempFile("checkpoint", ".json");
+            checkpoint.deleteOnExit();
+
+            Crawler crawler = new Crawler(2, System.getProperty("java.io.tmpdir"), "");
+            assertTrue(crawler.crawl(seenUrl, 60000, 1));
+            assertTrue(crawler.crawl(pendingUrl, 60000, 1));
+            new Thread(crawler::stop).start();
+            assertFalse(crawler.shutdown(100, checkpoint.getPath()));
+
+            Files.write(checkpoint.toPath(), "{\"kind\":\"crawl\"}\n".getBytes(),
+                        StandardOpenOption.APPEND);
+            crawler = new Crawler(2, System.getProperty("java.io.tmpdir"), "");
+            assertEquals(1, crawler.resume(checkpoint.getPath()));
+            assertFalse(crawler.crawl(seenUrl + "#fragment", 60000, 1));
+            assertFalse(crawler.crawl(pendingUrl, 60000, 1));
+            new Thread(crawler::stop).start();
+            assertFalse(crawler.shutdown(0, ""));
+        }
+    }
 }
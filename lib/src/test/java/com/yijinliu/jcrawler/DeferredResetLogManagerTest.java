@@ -0,0 +1,36 @@
+package com.yijinliu.jcrawler;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class DeferredResetLogManagerTest extends TestCase {
+    public DeferredResetLogManagerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(DeferredResetLogManagerTest.class);
+    }
+
+    public void testResetWaitsForLatch() throws InterruptedException {
+        // Not the global LogManager, so deferResetUntil() ignores the latch.
+        assertFalse(DeferredResetLogManager.deferResetUntil(new CountDownLatch(1)));
+
+        DeferredResetLogManager manager = new DeferredResetLogManager();
+        CountDownLatch latch = new CountDownLatch(1);
+        manager.latches.add(latch);
+        CountDownLatch reset = new CountDownLatch(1);
+        Thread thread = new Thread(() -> {
+            manager.reset();
+            reset.countDown();
+        });
+        thread.start();
+        assertFalse(reset.await(200, TimeUnit.MILLISECONDS));
+        latch.countDown();
+        assertTrue(reset.await(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,51 @@
+package com.yijinliu.jcrawler;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.SocketTimeoutException;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class ThrottledInputStreamTest extends TestCase {
+    public ThrottledInputStreamTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(ThrottledInputStreamTest.class);
+    }
+
+    public void testThrottled() throws IOException {
+        byte[] data = new byte[256 * 1024];
+        for (int i = 0; i < data.length; i++) data[i] = (byte)i;
+        InputStream in = new ThrottledInputStream(
+            new ByteArrayInputStream(data), new BandwidthLimiter(1 << 20), null, true,
+            Long.MAX_VALUE);
+        byte[] buffer = new byte[data.length];
+        long start = System.nanoTime();
+        int total = 0;
+        int n;
+        while ((n = in.read(buffer, total, buffer.length - total)) > 0) total += n;
+        long elapsedMillis = (System.nanoTime() - start) / 1000000;
+        assertEquals(data.length, total);
+        assertEquals(data[12345], buffer[12345]);
+        assertEquals(-1, in.read());
+        // The bucket starts empty, so 256KB at 1MB/sec takes about 250ms.
+        assertTrue("took " + elapsedMillis + "ms", elapsedMillis >= 200);
+    }
+
+    public void testDeadline() throws IOException {
+        InputStream in = new ThrottledInputStream(
+            new ByteArrayInputStream(new byte[10]), new BandwidthLimiter(0), null, false,
+            System.nanoTime() - 1);
+        try {
+            in.read();
+            fail("expected SocketTimeoutException");
+        } catch (SocketTimeoutException e) {
+            // Expected.
+        }
+    }
+}
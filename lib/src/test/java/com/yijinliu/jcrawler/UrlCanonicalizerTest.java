@@ -0,0 +1,60 @@
+package com.yijinliu.jcrawler;
+
+import junit.framework.Test;
+import junit.framework.TestCase;
+import junit.framework.TestSuite;
+
+public class UrlCanonicalizerTest extends TestCase {
+    public UrlCanonicalizerTest(String testName) {
+        super(testName);
+    }
+
+    public static Test suite() {
+        return new TestSuite(UrlCanonicalizerTest.class);
+    }
+
+    public void testUnchanged() {
+        String url = "https://www.pdfdrive.com/search?q=deep+learning";
+        assertSame(url, UrlCanonicalizer.canonicalize(url));
+        url = "http://link.springer.com/openurl?genre=book&isbn=978-0-387-84858-7";
+        assertSame(url, UrlCanonicalizer.canonicalize(url));
+    }
+
+    public void testSchemeHostPort() {
+        assertEquals("https://www.pdfdrive.com/category/63",
+                     UrlCanonicalizer.canonicalize("HTTPS://WWW.PdfDrive.com:443/category/63"));
+        assertEquals("http://example.com:8080/",
+                     UrlCanonicalizer.canonicalize("http://Example.com:8080"));
+        assertEquals("http://user@[::1]/a",
+                     UrlCanonicalizer.canonicalize("http://user@[::1]:80/a"));
+    }
+
+    public void testPercentEncoding() {
+        assertEquals("https://a.com/Deep%20Learning.pdf",
+                     UrlCanonicalizer.canonicalize("https://a.com/Deep Learning.pdf"));
+        assertEquals("https://a.com/a-b%2F%3F",
+                     UrlCanonicalizer.canonicalize("https://a.com/%61%2db%2f%3f"));
+        assertEquals("https://a.com/%C3%A9%25",
+                     UrlCanonicalizer.canonicalize("https://a.com/é%"));
+    }
+
+    public void testFragmentAndQuery() {
+        assertEquals("https://a.com/p?a=1&b=2&b=1",
+                     UrlCanonicalizer.canonicalize("https://a.com/p?b=2&a=1&&b=1#top"));
+        assertEquals("https://a.com/p",
+                     UrlCanonicalizer.canonicalize(
+                         "https://a.com/p?utm_source=x#top",
+                         (host, param) -> host.equals("a.com") && param.startsWith("utm_")));
+        // Names which are prefixes of others, names without values and more than 8 parameters.
+        assertEquals("https://a.com/?a&a=3&ab=1&b=0&c&d=1&e=1&f=1&g=1&h=1",
+                     UrlCanonicalizer.canonicalize(
+                         "https://a.com?h=1&ab=1&a&g=1&c&f=1&a=3&e=1&d=1&b=0"));
+    }
+
+    public void testEscape() {
+        String url = "https://www.pdfdrive.com/search?q=deep+learning&pagecount=&page=2";
+        assertSame(url, UrlCanonicalizer.escape(url));
+        assertEquals("https://A.com/Deep%20Learning%C3%A9.pdf?b=1&a=%2d#top",
+                     UrlCanonicalizer.escape(" https://A.com/Deep Learningé.pdf?b=1&a=%2d#top "));
+    }
+}
@@ -1,6 +1,9 @@
 package com.yijinliu.jcrawler;
 
+import java.io.File;
 import java.io.UnsupportedEncodingException;
+import java.net.MalformedURLException;
+import java.net.URL;
 import java.net.URLEncoder;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -29,6 +32,18 @@ public class PdfdriveHandler implements Handler {
     public final static Pattern onClickPattern = Pattern.compile(
         "initConverter[(]'([0-9]+)','([0-9a-f]+)','EPUB'[)];.*");
 
+    public final static CompiledSelector bookLinkSelector =
+        CompiledSelector.compile(".files-new a");
+
+    public final static CompiledSelector pageLinkSelector =
+        CompiledSelector.compile(".pagination li > a");
+
+    public final static CompiledSelector titleSelector =
+        CompiledSelector.compile(".ebook-main h1");
+
+    public final static CompiledSelector dropdownItemSelector =
+        CompiledSelector.compile("a.dropdown-item");
+
     public final static int TIMEOUT_MILLIS = 30000;
 
     public final static int MAX_TRIES = 2;
@@ -39,9 +54,8 @@ public class PdfdriveHandler implements Handler {
 
     @Override
     public boolean Handle(String url, Document doc, Crawler crawler) {
-        if (url.startsWith(CATEGORY_URL_PREFIX) || url.startsWith(SEARCH_URL_PREFIX) ||
-                tagUrlPattern.matcher(url).matches()) {
-            doc.select(".files-new a").forEach((el) -> {
+        if (isListingUrl(url)) {
+            bookLinkSelector.select(doc).forEach((el) -> {
                 String bookUrl = el.absUrl("href");
                 if (bookUrlPattern.matcher(bookUrl).matches()) {
                     crawler.crawl(bookUrl, TIMEOUT_MILLIS, MAX_TRIES);
@@ -49,14 +63,14 @@ public class PdfdriveHandler implements Handler {
                     logger.atWarning().log("Unknown URL '%s'.", bookUrl);
                 }
             });
-            doc.select(".pagination li > a").forEach((el) -> {
+            pageLinkSelector.select(doc).forEach((el) -> {
                 if (el.className().isEmpty()) {
                     crawler.crawl(el.absUrl("href"), TIMEOUT_MILLIS, MAX_TRIES);
                 }
             });
             return true;
         } else if (bookUrlPattern.matcher(url).matches()) {
-            Element titleEl = doc.selectFirst(".ebook-main h1");
+            Element titleEl = titleSelector.selectFirst(doc);
             if (titleEl == null) {
                 logger.atWarning().log("Failed to find title element for '%s'.", url);
                 if (!crawler.retryCrawl(url, TIMEOUT_MILLIS, MAX_TRIES)) {
@@ -64,7 +78,7 @@ public class PdfdriveHandler implements Handler {
                 }
                 return true;
             }
-            Elements els = doc.select("a.dropdown-item");
+            Elements els = dropdownItemSelector.select(doc);
             String pdfUrl = null;
             for (int i = 0; i < els.size(); i++) {
                 String onClick = els.get(i).attr("onclick");
@@ -93,7 +107,7 @@ public class PdfdriveHandler implements Handler {
         System.setProperty(
                 "java.util.logging.SimpleFormatter.format",
                 "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS %4$s %5$s%6$s%n");
-        AnsiColorConsoleHandler.replaceDefault();
+        AsyncAnsiColorConsoleHandler.replaceDefault();
 
         Options options = new Options();
         options.addOption(Option.builder("c").longOpt("category")
@@ -101,12 +115,27 @@ public class PdfdriveHandler implements Handler {
                                              .argName("CATEGORY")
                                              .desc("categories to crawl")
                                              .build());
+        options.addOption(Option.builder("bw").longOpt("bandwidth")
+                                              .hasArg()
+                                              .argName("BYTES")
+                                              .desc("max bytes/sec to transfer")
+                                              .build());
+        options.addOption(Option.builder("cp").longOpt("checkpoint")
+                                              .hasArg()
+                                              .argName("FILE")
+                                              .desc("checkpoint of unfinished jobs")
+                                              .build());
         options.addOption(Option.builder("d").longOpt("download-root")
                                              .hasArg()
                                              .required()
                                              .argName("DIR")
                                              .desc("number of threads to use")
                                              .build());
+        options.addOption(Option.builder("ds").longOpt("drain-seconds")
+                                              .hasArg()
+                                              .argName("N")
+                                              .desc("seconds to finish queued jobs when stopped")
+                                              .build());
         options.addOption(Option.builder("lf").longOpt("log-file")
                                               .hasArg()
                                               .argName("LOGFILE")
@@ -146,26 +175,67 @@ public class PdfdriveHandler implements Handler {
         String downloadRoot = cmd.getOptionValue("download-root");
 
         Crawler crawler = new Crawler(numThreads, downloadRoot, cmd.getOptionValue("log-file"));
+        if (cmd.hasOption("bandwidth")) {
+            crawler.setBandwidth(Long.parseLong(cmd.getOptionValue("bandwidth")));
+        }
         crawler.addHandler(new PdfdriveHandler());
-        String[] categories = cmd.getOptionValues("category");
-        if (categories != null) {
-            for (String c : categories) {
-                crawler.crawl(categoryUrl(c), TIMEOUT_MILLIS, MAX_TRIES);
+        String checkpoint = cmd.getOptionValue("checkpoint", "");
+        if (checkpoint.isEmpty() || !new File(checkpoint).exists() ||
+                crawler.resume(checkpoint) == 0) {
+            String[] categories = cmd.getOptionValues("category");
+            if (categories != null) {
+                for (String c : categories) {
+                    crawler.crawl(categoryUrl(c), TIMEOUT_MILLIS, MAX_TRIES);
+                }
             }
-        }
-        String[] tags = cmd.getOptionValues("tag");
-        if (tags != null) {
-            for (String t : tags) {
-                crawler.crawl(tagUrl(t), TIMEOUT_MILLIS, MAX_TRIES);
+            String[] tags = cmd.getOptionValues("tag");
+            if (tags != null) {
+                for (String t : tags) {
+                    crawler.crawl(tagUrl(t), TIMEOUT_MILLIS, MAX_TRIES);
+                }
+            }
+            String[] queries = cmd.getOptionValues("query");
+            if (queries != null) {
+                for (String q : queries) {
+                    crawler.crawl(searchUrl(q), TIMEOUT_MILLIS, MAX_TRIES);
+                }
             }
         }
-        String[] queries = cmd.getOptionValues("query");
-        if (queries != null) {
-            for (String q : queries) {
-                crawler.crawl(searchUrl(q), TIMEOUT_MILLIS, MAX_TRIES);
+        long drainMillis = Long.parseLong(cmd.getOptionValue("drain-seconds", "0")) * 1000;
+        // Ctrl-C or SIGTERM stops crawling and saves unfinished jobs to the checkpoint.
+        Runtime.getRuntime().addShutdownHook(new Thread(crawler::stop));
+        crawler.shutdown(drainMillis, checkpoint);
+    }
+
+    // Category, search and tag pages. Checks the host and path rather than URL prefixes, so links
+    // using http or a mixed-case host are recognized too.
+    public static boolean isListingUrl(String url) {
+        URL urlObj;
+        try {
+            urlObj = new URL(url);
+        } catch (MalformedURLException e) {
+            return false;
+        }
+        if (!urlObj.getHost().equalsIgnoreCase("www.pdfdrive.com")) return false;
+        String path = urlObj.getPath();
+        if (path.startsWith("/category/")) return true;
+        if (path.equals("/search")) return hasQueryParam(urlObj.getQuery(), "q");
+        return tagUrlPattern.matcher("https://www.pdfdrive.com" + path).matches();
+    }
+
+    private static boolean hasQueryParam(String query, String name) {
+        if (query == null) return false;
+        int pos = 0;
+        while (pos <= query.length()) {
+            int amp = query.indexOf('&', pos);
+            if (amp < 0) amp = query.length();
+            if (query.startsWith(name, pos) &&
+                    (pos + name.length() == amp || query.charAt(pos + name.length()) == '=')) {
+                return true;
             }
+            pos = amp + 1;
         }
-        crawler.shutdown();
+        return false;
     }
 
     public static String categoryUrl(String category) {
@@ -183,5 +253,10 @@ public class PdfdriveHandler implements Handler {
 
     public final static String PROGRAMMING_URL = CATEGORY_URL_PREFIX + "63";
 
+    // Must run before anything logs, so the drain in shutdown() can still log from a shutdown hook.
+    static {
+        System.setProperty("java.util.logging.manager", DeferredResetLogManager.class.getName());
+    }
+
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();
 }
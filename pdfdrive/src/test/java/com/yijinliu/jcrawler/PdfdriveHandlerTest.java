@@ -3,6 +3,7 @@ package com.yijinliu.jcrawler;
 import junit.framework.Test;
 import junit.framework.TestCase;
 import junit.framework.TestSuite;
+import org.jsoup.Jsoup;
 
 public class PdfdriveHandlerTest extends TestCase {
     public PdfdriveHandlerTest(String testName) {
@@ -16,4 +17,22 @@ public class PdfdriveHandlerTest extends TestCase {
     public void testSpringerHandler() {
         PdfdriveHandler handler = new PdfdriveHandler();
     }
+
+    public void testListingUrl() {
+        String url =
+            "http://WWW.PdfDrive.com/search?q=deep+learning&pagecount=&pubyear=&searchin=&page=2";
+        assertTrue(PdfdriveHandler.isListingUrl(url));
+        assertTrue(PdfdriveHandler.isListingUrl(PdfdriveHandler.categoryUrl("63")));
+        assertTrue(PdfdriveHandler.isListingUrl("http://www.pdfdrive.com/category/63/p2/"));
+        assertFalse(PdfdriveHandler.isListingUrl(
+            "https://www.pdfdrive.com/search?page=2&searchin="));
+        assertFalse(PdfdriveHandler.isListingUrl(
+            "https://www.pdfdrive.com/deep-learning-e12345.html"));
+
+        Crawler crawler = new Crawler(1, System.getProperty("java.io.tmpdir"), "");
+        assertTrue(new PdfdriveHandler().Handle(
+            url, Jsoup.parse("<div class='files-new'></div><ul class='pagination'></ul>", url),
+            crawler));
+        crawler.shutdown();
+    }
 }
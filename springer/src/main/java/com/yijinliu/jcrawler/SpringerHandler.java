@@ -1,5 +1,7 @@
 package com.yijinliu.jcrawler;
 
+import java.io.File;
+
 import com.google.common.flogger.FluentLogger;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.DefaultParser;
@@ -17,6 +19,9 @@ public class SpringerHandler implements Handler {
 
     public final static String BOOK_URL_PREFIX = "http://link.springer.com/openurl?";
 
+    public final static CompiledSelector titleSelector =
+        CompiledSelector.compile(".page-title > h1");
+
     public final static int TIMEOUT_MILLIS = 5000;
 
     public final static int MAX_TRIES = 2;
@@ -27,7 +32,7 @@ public class SpringerHandler implements Handler {
 
     @Override
     public boolean Handle(String url, Document doc, Crawler crawler) {
-        if (url == ML_65_URL) {
+        if (url.equals(ML_65_URL)) {
             doc.getElementsByTag("a").forEach((el) -> {
                 String bookUrl = el.attr("href");
                 if (bookUrl.startsWith(BOOK_URL_PREFIX)) {
@@ -36,7 +41,7 @@ public class SpringerHandler implements Handler {
             });
             return true;
         } else if (url.startsWith(BOOK_URL_PREFIX)) {
-            Element titleEl = doc.selectFirst(".page-title > h1");
+            Element titleEl = titleSelector.selectFirst(doc);
             Elements pdfEls = doc.getElementsByAttributeValue(
                 "title", "Download this book in PDF format");
             if (titleEl == null || pdfEls.isEmpty()) {
@@ -60,15 +65,30 @@ public class SpringerHandler implements Handler {
         System.setProperty(
                 "java.util.logging.SimpleFormatter.format",
                 "%1$tY-%1$tm-%1$td %1$tH:%1$tM:%1$tS %4$s %5$s%6$s%n");
-        AnsiColorConsoleHandler.replaceDefault();
+        AsyncAnsiColorConsoleHandler.replaceDefault();
 
         Options options = new Options();
+        options.addOption(Option.builder("bw").longOpt("bandwidth")
+                                              .hasArg()
+                                              .argName("BYTES")
+                                              .desc("max bytes/sec to transfer")
+                                              .build());
+        options.addOption(Option.builder("cp").longOpt("checkpoint")
+                                              .hasArg()
+                                              .argName("FILE")
+                                              .desc("checkpoint of unfinished jobs")
+                                              .build());
         options.addOption(Option.builder("d").longOpt("download-root")
                                              .hasArg()
                                              .required()
                                              .argName("DIR")
                                              .desc("number of threads to use")
                                              .build());
+        options.addOption(Option.builder("ds").longOpt("drain-seconds")
+                                              .hasArg()
+                                              .argName("N")
+                                              .desc("seconds to finish queued jobs when stopped")
+                                              .build());
         options.addOption(Option.builder("lf").longOpt("log-file")
                                               .hasArg()
                                               .argName("LOGFILE")
@@ -98,9 +118,24 @@ public class SpringerHandler implements Handler {
         String downloadRoot = cmd.getOptionValue("download-root");
 
         Crawler crawler = new Crawler(numThreads, downloadRoot, cmd.getOptionValue("log-file"));
+        if (cmd.hasOption("bandwidth")) {
+            crawler.setBandwidth(Long.parseLong(cmd.getOptionValue("bandwidth")));
+        }
         crawler.addHandler(new SpringerHandler());
-        crawler.crawl(ML_65_URL, TIMEOUT_MILLIS, MAX_TRIES);
-        crawler.shutdown();
+        String checkpoint = cmd.getOptionValue("checkpoint", "");
+        if (checkpoint.isEmpty() || !new File(checkpoint).exists() ||
+                crawler.resume(checkpoint) == 0) {
+            crawler.crawl(ML_65_URL, TIMEOUT_MILLIS, MAX_TRIES);
+        }
+        long drainMillis = Long.parseLong(cmd.getOptionValue("drain-seconds", "0")) * 1000;
+        // Ctrl-C or SIGTERM stops crawling and saves unfinished jobs to the checkpoint.
+        Runtime.getRuntime().addShutdownHook(new Thread(crawler::stop));
+        crawler.shutdown(drainMillis, checkpoint);
+    }
+
+    // Must run before anything logs, so the drain in shutdown() can still log from a shutdown hook.
+    static {
+        System.setProperty("java.util.logging.manager", DeferredResetLogManager.class.getName());
     }
 
     private static final FluentLogger logger = FluentLogger.forEnclosingClass();